@@ -0,0 +1,161 @@
+package org.javastack.preferences;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javastack.preferences.SourceFile.NameFilter;
+
+/**
+ * Read-only SourceFile from ClassLoader resources (directories or jars)
+ * 
+ * <pre>
+ * Usage:
+ * 
+ * -Dorg.javastack.preferences.sourcedir=classpath:path/in/classpath
+ * </pre>
+ * 
+ * Resources are resolved with the Context ClassLoader of the thread that creates the node. That
+ * ClassLoader is weakly referenced: once it is collected the source reports not found / IOException.
+ */
+public class ClasspathSourceFileProvider implements SourceFileProvider {
+	public static final String PROTOCOL = "classpath";
+	private static final Logger log = Logger.getLogger(ClasspathSourceFileProvider.class.getName());
+
+	@Override
+	public String getProtocol() {
+		return PROTOCOL;
+	}
+
+	@Override
+	public SourceFile getSource(final String dir, final String file) {
+		return new SourceFileClasspath(dir, file);
+	}
+
+	static class SourceFileClasspath extends SourceFile {
+		// Weak: nodes are cached per ClassLoader, don't keep it alive
+		private final WeakReference<ClassLoader> loader;
+		private final String path;
+		private final String resource;
+
+		SourceFileClasspath(final String dir, final String file) {
+			super(dir, file);
+			final ClassLoader ctxLoader = Thread.currentThread().getContextClassLoader();
+			this.loader = new WeakReference<ClassLoader>(ctxLoader != null ? ctxLoader : SourceFile.class
+					.getClassLoader());
+			String path = dir.substring(PROTOCOL.length() + 1);
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			while (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+			this.path = path;
+			this.resource = (path.isEmpty() ? file : path + "/" + file);
+		}
+
+		/**
+		 * ClassLoader of the node, never replaced by another one: resources would be different
+		 * 
+		 * @throws IOException if the ClassLoader has been collected (webapp unloaded)
+		 */
+		private ClassLoader getLoader() throws IOException {
+			final ClassLoader ctxLoader = loader.get();
+			if (ctxLoader == null)
+				throw new IOException("ClassLoader unloaded for source: " + this);
+			return ctxLoader;
+		}
+
+		@Override
+		public String[] directoryList(final NameFilter filter) throws IOException {
+			final LinkedHashSet<String> files = new LinkedHashSet<String>();
+			final Enumeration<URL> e = getLoader().getResources(path);
+			while (e.hasMoreElements()) {
+				final URL url = e.nextElement();
+				if ("file".equalsIgnoreCase(url.getProtocol())) {
+					listDirectory(url, filter, files);
+				} else if ("jar".equalsIgnoreCase(url.getProtocol())) {
+					listJar(url, filter, files);
+				}
+			}
+			return files.toArray(new String[files.size()]);
+		}
+
+		private static void listDirectory(final URL url, final NameFilter filter,
+				final LinkedHashSet<String> files) throws IOException {
+			final File dir;
+			try {
+				dir = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			final File[] list = dir.listFiles();
+			if (list == null)
+				return;
+			for (final File f : list) {
+				if (f.isFile() && filter.accept(f.getName())) {
+					files.add(f.getName());
+				}
+			}
+		}
+
+		private static void listJar(final URL url, final NameFilter filter, final LinkedHashSet<String> files)
+				throws IOException {
+			final URLConnection conn = url.openConnection();
+			if (!(conn instanceof JarURLConnection))
+				return;
+			final JarURLConnection jarConn = (JarURLConnection) conn;
+			String prefix = jarConn.getEntryName();
+			prefix = ((prefix == null) || prefix.isEmpty() ? "" : (prefix.endsWith("/") ? prefix : prefix + "/"));
+			// Shared with ClassLoader (cached), must not be closed
+			final JarFile jar = jarConn.getJarFile();
+			final Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				final JarEntry entry = entries.nextElement();
+				final String name = entry.getName();
+				if (entry.isDirectory() || !name.startsWith(prefix))
+					continue;
+				final String child = name.substring(prefix.length());
+				if ((child.indexOf('/') < 0) && filter.accept(child)) {
+					files.add(child);
+				}
+			}
+		}
+
+		@Override
+		public boolean fileExists() {
+			try {
+				return (getLoader().getResource(resource) != null);
+			} catch (IOException e) {
+				log.log(Level.WARNING, e.toString());
+			}
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			final InputStream is = getLoader().getResourceAsStream(resource);
+			if (is == null)
+				throw new FileNotFoundException("Resource not found: " + this);
+			return is;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read-only source: " + this);
+		}
+	}
+}
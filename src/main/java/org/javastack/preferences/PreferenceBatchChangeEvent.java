@@ -0,0 +1,36 @@
+package org.javastack.preferences;
+
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+/**
+ * Event for a batch of changes applied with {@link StandalonePreferences#update(Map, boolean)}
+ * 
+ * @see PreferenceBatchChangeListener
+ */
+public class PreferenceBatchChangeEvent extends EventObject {
+	private static final long serialVersionUID = 1L;
+	private final Map<String, String> changes;
+
+	public PreferenceBatchChangeEvent(final Preferences node, final Map<String, String> changes) {
+		super(node);
+		this.changes = Collections.unmodifiableMap(new LinkedHashMap<String, String>(changes));
+	}
+
+	/**
+	 * @return node that changed
+	 */
+	public Preferences getNode() {
+		return (Preferences) getSource();
+	}
+
+	/**
+	 * @return changed keys (in batch order) with new value, {@code null} for removed keys
+	 */
+	public Map<String, String> getChanges() {
+		return changes;
+	}
+}
@@ -0,0 +1,18 @@
+package org.javastack.preferences;
+
+import java.util.EventListener;
+
+/**
+ * Listener for batches of changes applied with
+ * {@link StandalonePreferences#update(java.util.Map, boolean)}
+ * 
+ * @see StandalonePreferences#addBatchChangeListener(PreferenceBatchChangeListener)
+ */
+public interface PreferenceBatchChangeListener extends EventListener {
+	/**
+	 * Called once per batch, in the thread that applied it, after the node lock is released
+	 * 
+	 * @param evt batch of changes
+	 */
+	void preferenceBatchChange(final PreferenceBatchChangeEvent evt);
+}
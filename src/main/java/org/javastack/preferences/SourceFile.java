@@ -16,18 +16,28 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Source of a preferences file: local filesystem and http/https are built-in, other protocols are
+ * provided by {@link SourceFileProvider} implementations registered with {@link ServiceLoader}
+ */
 public abstract class SourceFile {
 	public static final int DEFAULT_CONNECT_TIMEOUT = 180000; 	// Default: 3min
 	public static final int DEFAULT_READ_TIMEOUT = 120000; 		// Default: 2min
 	private static final Logger log = Logger.getLogger(SourceFile.class.getName());
 	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final Map<String, SourceFileProvider> providers = loadProviders();
 	protected final String dir;
 	protected final String file;
 
-	private SourceFile(final String dir, final String file) {
+	protected SourceFile(final String dir, final String file) {
 		this.dir = dir;
 		this.file = file;
 	}
@@ -40,6 +50,17 @@ public abstract class SourceFile {
 
 	public abstract OutputStream getOutputStream() throws IOException;
 
+	/**
+	 * Get OutputStream that replaces the whole file on close, readers see the old or the new content.
+	 * Default implementation is {@link #getOutputStream()}.
+	 * 
+	 * @return output stream, close commits the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public OutputStream getAtomicOutputStream() throws IOException {
+		return getOutputStream();
+	}
+
 	@Override
 	public String toString() {
 		return dir + "/" + file;
@@ -54,6 +75,10 @@ public abstract class SourceFile {
 			} else if (proto.equalsIgnoreCase("file")) {
 				return new SourceFileLocal(dir.substring("file:".length()), file);
 			}
+			final SourceFileProvider provider = providers.get(proto.toLowerCase());
+			if (provider != null) {
+				return provider.getSource(dir, file);
+			}
 		}
 		// Check for Local File
 		switch (dir.charAt(0)) {
@@ -77,7 +102,25 @@ public abstract class SourceFile {
 		return null;
 	}
 
-	static interface NameFilter {
+	private static Map<String, SourceFileProvider> loadProviders() {
+		final Map<String, SourceFileProvider> map = new HashMap<String, SourceFileProvider>();
+		// Providers are loaded once, from the library ClassLoader (not from webapp ClassLoaders)
+		final Iterator<SourceFileProvider> i = ServiceLoader.load(SourceFileProvider.class,
+				SourceFile.class.getClassLoader()).iterator();
+		while (true) {
+			try {
+				if (!i.hasNext())
+					break;
+				final SourceFileProvider provider = i.next();
+				map.put(provider.getProtocol().toLowerCase(), provider);
+			} catch (ServiceConfigurationError e) {
+				log.log(Level.WARNING, "Error loading SourceFileProvider: " + e.toString());
+			}
+		}
+		return map;
+	}
+
+	public static interface NameFilter {
 		boolean accept(final String name);
 	}
 
@@ -117,6 +160,84 @@ public abstract class SourceFile {
 		public OutputStream getOutputStream() throws FileNotFoundException {
 			return new FileOutputStream(f);
 		}
+
+		/**
+		 * Write to a temporary file in the directory of the real file (symlinks resolved), renamed over
+		 * it on close, so readers never see a partially written file (except on Windows, see
+		 * replaceWithBackup). If a write fails, close discards the file. The new file gets default
+		 * permissions and owner of this process.
+		 */
+		@Override
+		public OutputStream getAtomicOutputStream() throws IOException {
+			final File target = f.getCanonicalFile();
+			final File tmp = File.createTempFile(file + ".", ".tmp", target.getParentFile());
+			return new FilterOutputStream(new FileOutputStream(tmp)) {
+				private boolean closed = false;
+				private boolean failed = false;
+
+				@Override
+				public void write(final int b) throws IOException {
+					try {
+						out.write(b);
+					} catch (IOException e) {
+						failed = true;
+						throw e;
+					}
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					try {
+						out.write(b, off, len);
+					} catch (IOException e) {
+						failed = true;
+						throw e;
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (closed)
+						return;
+					closed = true;
+					try {
+						super.close();
+					} catch (IOException e) {
+						tmp.delete();
+						throw e;
+					}
+					if (failed) {
+						tmp.delete();
+						throw new IOException("Discarded incomplete write of " + target);
+					}
+					if (!tmp.renameTo(target)) {
+						replaceWithBackup(tmp, target);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Windows can not rename over an existing file: move the old file to a backup, rename, and restore
+	 * the backup if the rename fails. The target is missing for a moment (not atomic), but the old or
+	 * the new content is never lost.
+	 */
+	private static void replaceWithBackup(final File tmp, final File f) throws IOException {
+		final File bak = new File(tmp.getPath() + ".bak");
+		if (!f.renameTo(bak)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp + " to " + f);
+		}
+		if (tmp.renameTo(f)) {
+			bak.delete();
+			return;
+		}
+		if (!bak.renameTo(f)) {
+			throw new IOException("Unable to rename " + tmp + " to " + f + ", old file kept in " + bak);
+		}
+		tmp.delete();
+		throw new IOException("Unable to rename " + tmp + " to " + f);
 	}
 
 	static class SourceFileHTTP extends SourceFile {
@@ -0,0 +1,31 @@
+package org.javastack.preferences;
+
+/**
+ * Service Provider Interface for {@link SourceFile} backends
+ * 
+ * <pre>
+ * Register implementations in:
+ * 
+ * META-INF/services/org.javastack.preferences.SourceFileProvider
+ * </pre>
+ * 
+ * @see java.util.ServiceLoader
+ */
+public interface SourceFileProvider {
+	/**
+	 * Protocol handled by this provider (case insensitive), like "zip" for "zip:/path/file.zip"
+	 * 
+	 * @return protocol name without colon
+	 */
+	String getProtocol();
+
+	/**
+	 * Get source for a file in a directory
+	 * 
+	 * @param dir directory (including protocol prefix)
+	 * @param file file name
+	 * @return source file
+	 * @throws IllegalArgumentException if dir is invalid for this provider
+	 */
+	SourceFile getSource(final String dir, final String file);
+}
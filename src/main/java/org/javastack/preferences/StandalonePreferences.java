@@ -1,15 +1,30 @@
 package org.javastack.preferences;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.javastack.mapexpression.InvalidExpression;
 import org.javastack.mapexpression.MapExpression;
@@ -33,17 +48,22 @@ public class StandalonePreferences extends AbstractPreferences {
 	private static final String PROP_SOURCE_DIR = packageName + ".sourcedir";
 	private static final String PROP_GLOBAL_EVAL_DISABLED_NAME = packageName + ".evalget.disabled";
 	private static final String PROP_GLOBAL_EXPIRE_MILLIS = packageName + ".stale.millis";
+	private static final String PROP_GLOBAL_ATOMIC_SAVE = packageName + ".save.atomic";
 	private static final String PROP_LOCAL_EVAL_DISABLED_NAME = "preferences.evalget.disabled";
 	private static final String PROP_SOURCE_DIR_DEF_VALUE;
 	private static MapExpression SOURCE_EXPR = null;
 	private static final boolean globalEvalDisabled;
 	private static final int globalStaleMillis;
+	private static final boolean globalAtomicSave;
 	private static final String ROOT_NAME = "ROOT";
 	private static final String FILE_EXTENSION = ".properties";
+	private static final char CODE_POINT_U0000 = '\u0000';
+	private static final int IMPORT_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
 	private final String sourceDir;
 	private final String fileName;
 	private final SourceFile file;
 	private final StringProperties data;
+	private final List<PreferenceBatchChangeListener> batchListeners = new CopyOnWriteArrayList<PreferenceBatchChangeListener>();
 	private boolean nodeEvalDisabled = false;
 	private boolean isDirty = false;
 	private long lastLoad = 0;
@@ -52,6 +72,7 @@ public class StandalonePreferences extends AbstractPreferences {
 		PROP_SOURCE_DIR_DEF_VALUE = new File(System.getProperty("user.home"), "sysprefs").getAbsolutePath();
 		globalEvalDisabled = Boolean.getBoolean(PROP_GLOBAL_EVAL_DISABLED_NAME);
 		globalStaleMillis = Integer.getInteger(PROP_GLOBAL_EXPIRE_MILLIS, 0);
+		globalAtomicSave = Boolean.getBoolean(PROP_GLOBAL_ATOMIC_SAVE);
 		final String exp = System.getProperty(PROP_SOURCE_DIR);
 		if (exp != null) {
 			try {
@@ -139,8 +160,12 @@ public class StandalonePreferences extends AbstractPreferences {
 		log.log(Level.INFO, "Saving StandalonePreferences to file " + file);
 		OutputStream os = null;
 		try {
-			os = file.getOutputStream();
+			os = (globalAtomicSave ? file.getAtomicOutputStream() : file.getOutputStream());
 			data.getRootView().store(os, fileName);
+			// Close commits the file (rename / HTTP response), errors must be reported
+			final OutputStream o = os;
+			os = null;
+			o.close();
 			isDirty = false;
 		} finally {
 			try {
@@ -151,6 +176,296 @@ public class StandalonePreferences extends AbstractPreferences {
 		}
 	}
 
+	/**
+	 * Apply a set of changes to this node atomically: all puts and removes are done under a single
+	 * acquisition of the node lock, so readers never see a half-applied batch. A {@code null} value
+	 * removes the key. The batch is validated before anything is applied; if any entry is invalid
+	 * the node is left unchanged.
+	 * <p>
+	 * Registered {@link PreferenceBatchChangeListener}s receive one event with all the changes, in
+	 * this thread, after the lock is released. The standard {@link java.util.prefs.PreferenceChangeEvent}s
+	 * are still queued one per key; they are delivered asynchronously and can interleave with events of
+	 * other nodes, so they don't mark the boundaries of the batch.
+	 * 
+	 * @param changes map of key to new value ({@code null} for remove)
+	 * @param flush if true, the node is saved once, before the lock is released
+	 * @throws IllegalArgumentException if a key or value exceeds the maximum length or contains the
+	 *             null control character (U+0000)
+	 * @throws NullPointerException if changes or a key is {@code null}
+	 * @throws IllegalStateException if this node has been removed
+	 * @throws BackingStoreException if flush fails
+	 */
+	public void update(final Map<String, String> changes, final boolean flush) throws BackingStoreException {
+		// Validate and apply the same snapshot, caller may modify its map meanwhile
+		final Map<String, String> batch = new LinkedHashMap<String, String>(changes);
+		for (final Entry<String, String> e : batch.entrySet()) {
+			final String key = e.getKey();
+			final String value = e.getValue();
+			if (key == null)
+				throw new NullPointerException("Null key");
+			if (key.length() > MAX_KEY_LENGTH)
+				throw new IllegalArgumentException("Key too long: " + key);
+			if ((value != null) && (value.length() > MAX_VALUE_LENGTH))
+				throw new IllegalArgumentException("Value too long: " + value);
+			// Rejected by AbstractPreferences since Java 9
+			if (key.indexOf(CODE_POINT_U0000) >= 0)
+				throw new IllegalArgumentException("Key contains code point U+0000");
+			if ((value != null) && (value.indexOf(CODE_POINT_U0000) >= 0))
+				throw new IllegalArgumentException("Value contains code point U+0000");
+		}
+		boolean applied = false;
+		try {
+			synchronized (lock) {
+				for (final Entry<String, String> e : batch.entrySet()) {
+					final String value = e.getValue();
+					if (value == null) {
+						remove(e.getKey());
+					} else {
+						put(e.getKey(), value);
+					}
+				}
+				applied = true;
+				if (flush) {
+					flushSpi();
+				}
+			}
+		} finally {
+			// Changes are applied in memory even if flush fails
+			if (applied && !batch.isEmpty()) {
+				fireBatchChange(batch);
+			}
+		}
+	}
+
+	/**
+	 * Register listener for batches applied with {@link #update(Map, boolean)}
+	 * 
+	 * @param listener listener to add
+	 * @throws NullPointerException if listener is {@code null}
+	 */
+	public void addBatchChangeListener(final PreferenceBatchChangeListener listener) {
+		if (listener == null)
+			throw new NullPointerException("Change listener is null.");
+		batchListeners.add(listener);
+	}
+
+	/**
+	 * Remove listener registered with {@link #addBatchChangeListener(PreferenceBatchChangeListener)}
+	 * 
+	 * @param listener listener to remove
+	 * @throws IllegalArgumentException if listener is not registered
+	 */
+	public void removeBatchChangeListener(final PreferenceBatchChangeListener listener) {
+		if (!batchListeners.remove(listener))
+			throw new IllegalArgumentException("Listener not registered.");
+	}
+
+	private void fireBatchChange(final Map<String, String> batch) {
+		if (batchListeners.isEmpty())
+			return;
+		final PreferenceBatchChangeEvent evt = new PreferenceBatchChangeEvent(this, batch);
+		for (final PreferenceBatchChangeListener listener : batchListeners) {
+			try {
+				listener.preferenceBatchChange(evt);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Error in PreferenceBatchChangeListener of " + absolutePath() + ": "
+						+ e.toString(), e);
+			}
+		}
+	}
+
+	/**
+	 * Export the files of this node and all descendants to a zip archive, one entry per node file. The
+	 * sourcedir is listed once and each file is copied as-is (raw) or with all values evaluated.
+	 * Pending changes of this subtree are flushed before export.
+	 * 
+	 * @param os output stream for the archive (not closed)
+	 * @param evaluated if true, values are stored evaluated (as returned by {@link #get(String, String)})
+	 * @throws IOException if reading a node file or writing the archive fails
+	 * @throws BackingStoreException if flush or directory list fails
+	 * @see #importArchive(InputStream)
+	 */
+	public void exportArchive(final OutputStream os, final boolean evaluated) throws IOException,
+			BackingStoreException {
+		flush();
+		final String[] files;
+		try {
+			files = file.directoryList(getSubtreeFilter());
+		} catch (IOException e) {
+			throw new BackingStoreException(e);
+		}
+		final ZipOutputStream zos = new ZipOutputStream(os);
+		final byte[] buf = new byte[4096];
+		if (files != null) {
+			for (final String name : files) {
+				final SourceFile src = SourceFile.getSource(sourceDir, name);
+				InputStream is = null;
+				try {
+					is = src.getInputStream();
+					zos.putNextEntry(new ZipEntry(name));
+					if (evaluated) {
+						zos.write(evalFile(is, name));
+					} else {
+						int len;
+						while ((len = is.read(buf)) != -1) {
+							zos.write(buf, 0, len);
+						}
+					}
+					zos.closeEntry();
+				} finally {
+					try {
+						if (is != null)
+							is.close();
+					} catch (Exception e) {
+					}
+				}
+			}
+		}
+		zos.finish();
+		zos.flush();
+	}
+
+	private static final byte[] evalFile(final InputStream is, final String name) throws IOException {
+		final StringProperties raw = new StringProperties().getRootView();
+		raw.load(is);
+		final boolean evalDisabled = globalEvalDisabled
+				|| Boolean.parseBoolean(raw.getProperty(PROP_LOCAL_EVAL_DISABLED_NAME, "false"));
+		final StringProperties out = new StringProperties().getRootView();
+		for (final String key : raw.stringPropertyNames()) {
+			String value = raw.getProperty(key);
+			if (!evalDisabled) {
+				try {
+					value = raw.getPropertyEval(key);
+				} catch (InvalidExpression e) {
+					log.log(Level.WARNING, "Error in eval of " + name + "/" + key + ": " + e.toString());
+				}
+			}
+			out.setProperty(key, value);
+		}
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		out.store(bos, name.substring(0, name.length() - FILE_EXTENSION.length()));
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Import an archive created with {@link #exportArchive(OutputStream, boolean)}. The whole archive is
+	 * read and validated before any file is written: only entries that belong to this node or its
+	 * descendants are accepted. Files are then written in parallel, each one replaced atomically on
+	 * local sourcedirs.
+	 * <p>
+	 * After the files are written (also if some write failed), every loaded node of this subtree is
+	 * reloaded from its file, so later changes are saved on top of the imported content. The import is
+	 * refused while any loaded node of this subtree has unsaved changes; changes made by other threads
+	 * during the import are discarded (logged). Nodes loaded by other roots (other ClassLoaders) are not
+	 * reloaded: they see the new content when they expire (stale) or a new root is created.
+	 * 
+	 * @param is input stream of the archive (not closed)
+	 * @throws IOException if the archive is invalid or writing a node file fails
+	 * @throws IllegalStateException if a loaded node of this subtree has unsaved changes
+	 */
+	public void importArchive(final InputStream is) throws IOException {
+		final NameFilter filter = getSubtreeFilter();
+		final ZipInputStream zis = new ZipInputStream(is);
+		final Map<String, ByteArrayOutputStream> files = new LinkedHashMap<String, ByteArrayOutputStream>();
+		final byte[] buf = new byte[4096];
+		ZipEntry entry;
+		while ((entry = zis.getNextEntry()) != null) {
+			final String name = entry.getName();
+			if (entry.isDirectory() || (name.indexOf('/') >= 0) || (name.indexOf('\\') >= 0)
+					|| !filter.accept(name) || files.containsKey(name)) {
+				throw new IOException("Invalid entry in archive: " + name);
+			}
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			int len;
+			while ((len = zis.read(buf)) != -1) {
+				bos.write(buf, 0, len);
+			}
+			zis.closeEntry();
+			files.put(name, bos);
+		}
+		checkNotDirty(this);
+		final ExecutorService pool = Executors.newFixedThreadPool(IMPORT_THREADS);
+		final List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		try {
+			for (final Entry<String, ByteArrayOutputStream> file : files.entrySet()) {
+				final SourceFile dst = SourceFile.getSource(sourceDir, file.getKey());
+				final ByteArrayOutputStream bos = file.getValue();
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						log.log(Level.INFO, "Importing StandalonePreferences to file " + dst);
+						OutputStream os = null;
+						try {
+							os = dst.getAtomicOutputStream();
+							bos.writeTo(os);
+							final OutputStream o = os;
+							os = null;
+							o.close();
+						} finally {
+							try {
+								if (os != null)
+									os.close();
+							} catch (Exception e) {
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			IOException error = null;
+			for (final Future<Void> task : tasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (error == null)
+						error = (cause instanceof IOException ? (IOException) cause : new IOException(cause));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					if (error == null)
+						error = new IOException(e);
+					break;
+				}
+			}
+			reload(this);
+			if (error != null)
+				throw error;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reload node and loaded descendants from their files, discarding memory content
+	 */
+	private static void reload(final StandalonePreferences node) {
+		synchronized (node.lock) {
+			if (node.isDirty) {
+				log.log(Level.WARNING, "Discarding unsaved changes of " + node.absolutePath());
+			}
+			for (final String key : new ArrayList<String>(node.data.stringPropertyNames())) {
+				node.data.removeProperty(key);
+			}
+			node.load();
+			node.nodeEvalDisabled = Boolean.parseBoolean(node.data.getProperty(PROP_LOCAL_EVAL_DISABLED_NAME,
+					"false"));
+			node.isDirty = false;
+			for (final AbstractPreferences child : node.cachedChildren()) {
+				reload((StandalonePreferences) child);
+			}
+		}
+	}
+
+	private static void checkNotDirty(final StandalonePreferences node) {
+		synchronized (node.lock) {
+			if (node.isDirty)
+				throw new IllegalStateException("Unsaved changes in node: " + node.absolutePath());
+			for (final AbstractPreferences child : node.cachedChildren()) {
+				checkNotDirty((StandalonePreferences) child);
+			}
+		}
+	}
+
 	@Override
 	protected String getSpi(final String key) {
 		if (globalEvalDisabled || nodeEvalDisabled)
@@ -189,10 +504,17 @@ public class StandalonePreferences extends AbstractPreferences {
 		return names.toArray(new String[names.size()]);
 	}
 
-	@Override
-	protected String[] childrenNamesSpi() throws BackingStoreException {
-		final String baseName = (ROOT_NAME.equals(fileName) ? "" : fileName + ".");
-		final NameFilter filter = new NameFilter() {
+	private final String getBaseName() {
+		return (ROOT_NAME.equals(fileName) ? "" : fileName + ".");
+	}
+
+	/**
+	 * Filter for files of this node and all descendants
+	 */
+	private final NameFilter getSubtreeFilter() {
+		// Own file ("name.properties") also starts with baseName ("name.")
+		final String baseName = getBaseName();
+		return new NameFilter() {
 			@Override
 			public boolean accept(final String name) {
 				if (!name.endsWith(FILE_EXTENSION))
@@ -202,10 +524,15 @@ public class StandalonePreferences extends AbstractPreferences {
 				return true;
 			}
 		};
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		final String baseName = getBaseName();
 		final LinkedHashSet<String> subs = new LinkedHashSet<String>();
 		final String[] files;
 		try {
-			files = file.directoryList(filter);
+			files = file.directoryList(getSubtreeFilter());
 		} catch (IOException e) {
 			throw new BackingStoreException(e);
 		}
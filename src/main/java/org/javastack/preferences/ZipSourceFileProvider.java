@@ -0,0 +1,210 @@
+package org.javastack.preferences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.javastack.preferences.SourceFile.NameFilter;
+
+/**
+ * Read-only SourceFile from entries of a zip archive
+ * 
+ * <pre>
+ * Usage:
+ * 
+ * -Dorg.javastack.preferences.sourcedir=zip:/path/to/bundle.zip
+ * -Dorg.javastack.preferences.sourcedir=zip:/path/to/bundle.zip!/dir/in/zip
+ * </pre>
+ * 
+ * Each archive is opened once and indexed in memory (entries and directories), the index is rebuilt
+ * (and the old archive closed) only if the archive is modified. Entries are read fully into memory.
+ */
+public class ZipSourceFileProvider implements SourceFileProvider {
+	public static final String PROTOCOL = "zip";
+	private static final String SEPARATOR = "!/";
+	private static final Logger log = Logger.getLogger(ZipSourceFileProvider.class.getName());
+	private static final Map<File, ZipIndex> indexes = new HashMap<File, ZipIndex>();
+
+	@Override
+	public String getProtocol() {
+		return PROTOCOL;
+	}
+
+	@Override
+	public SourceFile getSource(final String dir, final String file) {
+		return new SourceFileZip(dir, file);
+	}
+
+	static ZipIndex getIndex(final File archive) throws IOException {
+		synchronized (indexes) {
+			ZipIndex index = indexes.get(archive);
+			if ((index == null) || index.isModified()) {
+				if (index != null) {
+					indexes.remove(archive);
+					index.close();
+				}
+				index = new ZipIndex(archive);
+				indexes.put(archive, index);
+			}
+			return index;
+		}
+	}
+
+	static class ZipIndex {
+		private final File archive;
+		private final long lastModified;
+		private final long length;
+		private final ZipFile zip;
+		private final Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+		private final Map<String, List<String>> dirs = new HashMap<String, List<String>>();
+		private boolean closed = false;
+
+		ZipIndex(final File archive) throws IOException {
+			this.archive = archive;
+			this.lastModified = archive.lastModified();
+			this.length = archive.length();
+			this.zip = new ZipFile(archive);
+			final Enumeration<? extends ZipEntry> e = zip.entries();
+			while (e.hasMoreElements()) {
+				final ZipEntry entry = e.nextElement();
+				if (entry.isDirectory())
+					continue;
+				final String name = entry.getName();
+				entries.put(name, entry);
+				final int offset = name.lastIndexOf('/');
+				final String dir = (offset < 0 ? "" : name.substring(0, offset));
+				List<String> list = dirs.get(dir);
+				if (list == null) {
+					list = new ArrayList<String>();
+					dirs.put(dir, list);
+				}
+				list.add(name.substring(offset + 1));
+			}
+		}
+
+		boolean isModified() {
+			return (archive.lastModified() != lastModified) || (archive.length() != length);
+		}
+
+		ZipEntry getEntry(final String name) {
+			return entries.get(name);
+		}
+
+		List<String> list(final String dir) {
+			return dirs.get(dir);
+		}
+
+		/**
+		 * Read entry fully, readers never keep the ZipFile open
+		 * 
+		 * @return entry content or null if this index is closed (archive modified)
+		 */
+		synchronized InputStream getInputStream(final ZipEntry entry) throws IOException {
+			if (closed)
+				return null;
+			final InputStream is = zip.getInputStream(entry);
+			try {
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.max(0, entry.getSize()));
+				final byte[] buf = new byte[4096];
+				int len;
+				while ((len = is.read(buf)) != -1) {
+					bos.write(buf, 0, len);
+				}
+				return new ByteArrayInputStream(bos.toByteArray());
+			} finally {
+				is.close();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			try {
+				zip.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error closing zip archive " + archive + ": " + e.toString());
+			}
+		}
+	}
+
+	static class SourceFileZip extends SourceFile {
+		private final File archive;
+		private final String path;
+		private final String entryName;
+
+		SourceFileZip(final String dir, final String file) {
+			super(dir, file);
+			final String location = dir.substring(PROTOCOL.length() + 1);
+			final int offset = location.indexOf(SEPARATOR);
+			String path = "";
+			if (offset < 0) {
+				archive = new File(location).getAbsoluteFile();
+			} else {
+				archive = new File(location.substring(0, offset)).getAbsoluteFile();
+				path = location.substring(offset + SEPARATOR.length());
+			}
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			while (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+			this.path = path;
+			this.entryName = (path.isEmpty() ? file : path + "/" + file);
+		}
+
+		@Override
+		public String[] directoryList(final NameFilter filter) throws IOException {
+			final List<String> list = getIndex(archive).list(path);
+			if (list == null)
+				return new String[0];
+			final ArrayList<String> files = new ArrayList<String>();
+			for (final String name : list) {
+				if (filter.accept(name))
+					files.add(name);
+			}
+			return files.toArray(new String[files.size()]);
+		}
+
+		@Override
+		public boolean fileExists() {
+			try {
+				return (getIndex(archive).getEntry(entryName) != null);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error opening zip archive " + archive + ": " + e.toString());
+			}
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			while (true) {
+				final ZipIndex index = getIndex(archive);
+				final ZipEntry entry = index.getEntry(entryName);
+				if (entry == null)
+					throw new FileNotFoundException("Entry not found: " + this);
+				final InputStream is = index.getInputStream(entry);
+				if (is != null)
+					return is;
+				// Archive modified while reading, retry with new index
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read-only source: " + this);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.javastack.preferences.sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.javastack.preferences.StandalonePreferences;
+import org.javastack.preferences.StandalonePreferencesFactory;
+
+/**
+ * Export/import round-trip of a non-root subtree
+ *
+ * <pre>
+ * Usage:
+ *
+ * java -cp standalone-preferences-X.X.X.jar:classes org.javastack.preferences.sandbox.ArchiveTest
+ * </pre>
+ */
+public class ArchiveTest {
+	private static final String SOURCE_DIR_PROP = "archive.sourcedir";
+	private static final String NODE = "/com/acme";
+	// Keep strong reference, or level is lost when logger is collected
+	private static final Logger prefsLog = Logger.getLogger("org.javastack.preferences");
+	private static final List<String> errors = new ArrayList<String>();
+
+	public static void main(final String[] args) throws Throwable {
+		System.setProperty("org.javastack.preferences.sourcedir", "{" + SOURCE_DIR_PROP + "}");
+		prefsLog.setLevel(Level.SEVERE);
+		final File srcDir = createTempDir("archive-src");
+		final File dstDir = createTempDir("archive-dst");
+		try {
+			System.setProperty(SOURCE_DIR_PROP, srcDir.getAbsolutePath());
+			final Preferences src = new StandalonePreferencesFactory().systemRoot();
+			src.node(NODE).put("own", "node-value");
+			src.node(NODE + "/db").put("url", "jdbc:test");
+			src.node("/com/other").put("excluded", "true");
+			src.flush();
+			final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			((StandalonePreferences) src.node(NODE)).exportArchive(archive, false);
+
+			System.setProperty(SOURCE_DIR_PROP, dstDir.getAbsolutePath());
+			final Preferences dst = new StandalonePreferencesFactory().systemRoot();
+			// Loaded before import, with old content
+			dst.node(NODE).put("own", "old-value");
+			dst.node(NODE).put("stale", "true");
+			dst.flush();
+			((StandalonePreferences) dst.node(NODE)).importArchive(new ByteArrayInputStream(archive
+					.toByteArray()));
+			// Loaded nodes are reloaded: see imported values, later saves keep them
+			expect("loaded own", "node-value", dst.node(NODE).get("own", null));
+			expect("loaded stale", null, dst.node(NODE).get("stale", null));
+			dst.node(NODE).put("after", "import");
+			dst.flush();
+
+			// Fresh factory: read back from imported files
+			final Preferences check = new StandalonePreferencesFactory().systemRoot();
+			expect("own", "node-value", check.node(NODE).get("own", null));
+			expect("after", "import", check.node(NODE).get("after", null));
+			expect("db/url", "jdbc:test", check.node(NODE + "/db").get("url", null));
+			expect("children", "[db]", Arrays.toString(check.node(NODE).childrenNames()));
+			expect("other", "false", String.valueOf(new File(dstDir, "com.other.properties").exists()));
+
+			// Invalid entry at the end: nothing is written
+			final File emptyDir = createTempDir("archive-empty");
+			try {
+				System.setProperty(SOURCE_DIR_PROP, emptyDir.getAbsolutePath());
+				final ByteArrayOutputStream bad = new ByteArrayOutputStream();
+				final ZipOutputStream zos = new ZipOutputStream(bad);
+				final ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));
+				ZipEntry entry;
+				while ((entry = zis.getNextEntry()) != null) {
+					zos.putNextEntry(new ZipEntry(entry.getName()));
+					zos.closeEntry();
+				}
+				zos.putNextEntry(new ZipEntry("com.other.properties"));
+				zos.closeEntry();
+				zos.finish();
+				final StandalonePreferences node = (StandalonePreferences) new StandalonePreferencesFactory()
+						.systemRoot().node(NODE);
+				try {
+					node.importArchive(new ByteArrayInputStream(bad.toByteArray()));
+					errors.add("invalid archive accepted");
+				} catch (IOException e) {
+					expect("partial import", "[]", Arrays.toString(emptyDir.list()));
+				}
+				// Unsaved changes: import refused
+				node.node("db").put("pending", "true");
+				try {
+					node.importArchive(new ByteArrayInputStream(archive.toByteArray()));
+					errors.add("import with unsaved changes accepted");
+				} catch (IllegalStateException e) {
+					expect("dirty import", "[]", Arrays.toString(emptyDir.list()));
+				}
+			} finally {
+				deleteDir(emptyDir);
+			}
+		} finally {
+			deleteDir(srcDir);
+			deleteDir(dstDir);
+		}
+		if (!errors.isEmpty()) {
+			for (final String e : errors) {
+				System.out.println("ERROR: " + e);
+			}
+			System.out.println("FAILED: " + errors.size() + " errors");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void expect(final String name, final String expected, final String value) {
+		if ((expected == null) ? (value != null) : !expected.equals(value)) {
+			errors.add(name + " expected=" + expected + " found=" + value);
+		}
+	}
+
+	private static File createTempDir(final String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory " + dir);
+		return dir;
+	}
+
+	private static void deleteDir(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
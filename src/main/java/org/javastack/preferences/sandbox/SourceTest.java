@@ -0,0 +1,210 @@
+package org.javastack.preferences.sandbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.javastack.preferences.SourceFile;
+import org.javastack.preferences.SourceFile.NameFilter;
+
+/**
+ * Checks of zip and classpath (jar) SourceFile providers
+ *
+ * <pre>
+ * Usage:
+ *
+ * java -cp standalone-preferences-X.X.X.jar:classes org.javastack.preferences.sandbox.SourceTest
+ * </pre>
+ */
+public class SourceTest {
+	private static final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+	private static final NameFilter ALL = new NameFilter() {
+		@Override
+		public boolean accept(final String name) {
+			return true;
+		}
+	};
+
+	public static void main(final String[] args) throws Throwable {
+		final File dir = createTempDir("source");
+		try {
+			testZip(dir);
+			testZipReplacedWhileReading(dir);
+			testClasspathJar(dir);
+		} finally {
+			deleteDir(dir);
+		}
+		if (!errors.isEmpty()) {
+			for (final String e : errors) {
+				System.out.println("ERROR: " + e);
+			}
+			System.out.println("FAILED: " + errors.size() + " errors");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * "!/dir" form, listing (only direct children) and index rebuild when the archive changes
+	 */
+	private static void testZip(final File dir) throws IOException {
+		final File zip = new File(dir, "bundle.zip");
+		writeArchive(zip, 1, false);
+		final String source = "zip:" + zip.getAbsolutePath() + "!/cfg/prefs";
+		expect("zip list", "[ROOT.properties, a.properties]", list(SourceFile.getSource(source, "x")));
+		expect("zip root list", "[other.properties]", list(SourceFile.getSource("zip:" + zip.getAbsolutePath(),
+				"x")));
+		expect("zip exists", "true", String.valueOf(SourceFile.getSource(source, "a.properties").fileExists()));
+		expect("zip not exists", "false", String.valueOf(SourceFile.getSource(source, "b.properties")
+				.fileExists()));
+		expect("zip read", "1", read(SourceFile.getSource(source, "a.properties")).getProperty("k"));
+		// Archive changed: index rebuilt
+		writeArchive(zip, 2, true);
+		expect("zip read changed", "2", read(SourceFile.getSource(source, "a.properties")).getProperty("k"));
+		expect("zip list changed", "[ROOT.properties, a.properties, b.properties]", list(SourceFile.getSource(
+				source, "x")));
+	}
+
+	/**
+	 * Readers while the archive is replaced: exercises index close and retry with new index
+	 */
+	private static void testZipReplacedWhileReading(final File dir) throws Exception {
+		final File zip = new File(dir, "replaced.zip");
+		writeArchive(zip, 0, false);
+		final SourceFile src = SourceFile.getSource("zip:" + zip.getAbsolutePath() + "!/cfg/prefs",
+				"a.properties");
+		final AtomicInteger reads = new AtomicInteger();
+		final long end = System.currentTimeMillis() + 2000;
+		final List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final Thread t = new Thread() {
+				@Override
+				public void run() {
+					while (System.currentTimeMillis() < end) {
+						try {
+							final String k = read(src).getProperty("k");
+							Integer.parseInt(k);
+							reads.incrementAndGet();
+						} catch (Exception e) {
+							errors.add("zip replaced read: " + e.toString());
+							return;
+						}
+					}
+				}
+			};
+			t.start();
+			readers.add(t);
+		}
+		int version = 0;
+		while (System.currentTimeMillis() < end) {
+			writeArchive(zip, ++version, (version & 1) == 0);
+		}
+		for (final Thread t : readers) {
+			t.join();
+		}
+		System.out.println("zip replaced: versions=" + version + " reads=" + reads.get());
+	}
+
+	/**
+	 * Listing of a directory inside a jar (ClasspathSourceFileProvider.listJar)
+	 */
+	private static void testClasspathJar(final File dir) throws Exception {
+		final File jar = new File(dir, "app.jar");
+		writeArchive(jar, 3, false);
+		final ClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		final ClassLoader mainLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		try {
+			final String source = "classpath:cfg/prefs";
+			expect("jar list", "[ROOT.properties, a.properties]", list(SourceFile.getSource(source, "x")));
+			expect("jar read", "3", read(SourceFile.getSource(source, "a.properties")).getProperty("k"));
+			expect("jar not exists", "false", String.valueOf(SourceFile.getSource(source, "b.properties")
+					.fileExists()));
+		} finally {
+			Thread.currentThread().setContextClassLoader(mainLoader);
+		}
+	}
+
+	/**
+	 * Write archive (with directory entries) to a temporary file and rename over the old one: an
+	 * open archive must not be modified in place
+	 */
+	private static void writeArchive(final File f, final int version, final boolean withB) throws IOException {
+		final File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+		final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tmp));
+		try {
+			zos.putNextEntry(new ZipEntry("cfg/"));
+			zos.putNextEntry(new ZipEntry("cfg/prefs/"));
+			putEntry(zos, "other.properties", "k=root");
+			putEntry(zos, "cfg/prefs/ROOT.properties", "r=1");
+			putEntry(zos, "cfg/prefs/a.properties", "k=" + version);
+			if (withB)
+				putEntry(zos, "cfg/prefs/b.properties", "k=b");
+			putEntry(zos, "cfg/prefs/sub/c.properties", "k=nested");
+		} finally {
+			zos.close();
+		}
+		// Length may be equal between versions, force a different modification time
+		tmp.setLastModified(System.currentTimeMillis() - 1000000L + version * 1000L);
+		if (!tmp.renameTo(f))
+			throw new IOException("Unable to rename " + tmp + " to " + f);
+	}
+
+	private static void putEntry(final ZipOutputStream zos, final String name, final String data)
+			throws IOException {
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write((data + "\n").getBytes("ISO-8859-1"));
+		zos.closeEntry();
+	}
+
+	private static String list(final SourceFile src) throws IOException {
+		final String[] names = src.directoryList(ALL);
+		Arrays.sort(names);
+		return Arrays.toString(names);
+	}
+
+	private static Properties read(final SourceFile src) throws IOException {
+		final Properties p = new Properties();
+		final InputStream is = src.getInputStream();
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+		return p;
+	}
+
+	private static void expect(final String name, final String expected, final String value) {
+		if (!expected.equals(value)) {
+			errors.add(name + " expected=" + expected + " found=" + value);
+		}
+	}
+
+	private static File createTempDir(final String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory " + dir);
+		return dir;
+	}
+
+	private static void deleteDir(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
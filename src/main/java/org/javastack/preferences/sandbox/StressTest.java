@@ -0,0 +1,542 @@
+package org.javastack.preferences.sandbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javastack.preferences.SourceFile;
+import org.javastack.preferences.StandalonePreferences;
+import org.javastack.preferences.StandalonePreferencesFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Concurrency stress test of StandalonePreferences / StandalonePreferencesFactory
+ *
+ * <pre>
+ * Usage:
+ *
+ * java -cp standalone-preferences-X.X.X.jar:classes org.javastack.preferences.sandbox.StressTest
+ *
+ * Options (System Properties):
+ * -Dstress.apps=8        simulated webapps (context ClassLoaders)
+ * -Dstress.threads=32    threads per webapp (1/8 writers, rest readers)
+ * -Dstress.seconds=10    duration of each phase
+ * -Dorg.javastack.preferences.stale.millis=100
+ * </pre>
+ *
+ * Phases: local, local with missing files (never loaded, always stale), shared (all webapps write the
+ * same node, through systemRoot() on each write), http (stub server) and classpath (read-only,
+ * resources served by each webapp ClassLoader).
+ * <p>
+ * Invariants checked: no lost updates, no torn files, no ClassLoader leaked through SYSTEM_ROOT.
+ * <p>
+ * In the http phase files are written by the stub server (temp file + rename), so the torn-file check
+ * there tests the stub, not the library.
+ * <p>
+ * Known failure (reported, not an error): in the shared phase updates are lost, each root (one per
+ * ClassLoader, and a new one after stale expiry) has its own copy of the node and rewrites the whole
+ * file on flush.
+ */
+public class StressTest {
+	private static final String SOURCE_DIR_PROP = "stress.sourcedir";
+	private static final String NODE_PREFIX = "/stress/app";
+	private static final String FILE_PREFIX = "stress.app";
+	private static final String SHARED_NODE = "/stress/shared";
+	private static final String SHARED_FILE = "stress.shared";
+	private static final String FILE_EXTENSION = ".properties";
+	private static final int SAMPLES = 8192;
+	// Keep strong reference, or level is lost when logger is collected
+	private static final Logger prefsLog = Logger.getLogger("org.javastack.preferences");
+	private static final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+	private final int apps = Integer.getInteger("stress.apps", 8);
+	private final int threads = Integer.getInteger("stress.threads", 32);
+	private final int seconds = Integer.getInteger("stress.seconds", 10);
+	private final int writers = Math.max(1, threads / 8);
+	private volatile boolean running = true;
+
+	public static void main(final String[] args) throws Throwable {
+		System.setProperty("org.javastack.preferences.sourcedir", "{" + SOURCE_DIR_PROP + "}");
+		// Torn files are only prevented with atomic save
+		System.setProperty("org.javastack.preferences.save.atomic", "true");
+		if (System.getProperty("org.javastack.preferences.stale.millis") == null) {
+			System.setProperty("org.javastack.preferences.stale.millis", "100");
+		}
+		// Missing files log a warning on every load
+		prefsLog.setLevel(Level.SEVERE);
+		final StressTest test = new StressTest();
+		final File localDir = createTempDir("stress-local");
+		final File missingDir = createTempDir("stress-missing");
+		final File httpDir = createTempDir("stress-http");
+		final File classpathDir = createTempDir("stress-classpath");
+		final File classpathRes = new File(classpathDir, "stress");
+		final HttpServer server = startServer(httpDir);
+		try {
+			test.createFiles(localDir, false);
+			test.run("local", localDir.getAbsolutePath(), null, false, false);
+			test.run("missing", missingDir.getAbsolutePath(), null, false, false);
+			test.run("shared", localDir.getAbsolutePath(), null, false, true);
+			test.createFiles(httpDir, false);
+			test.run("http", "http://127.0.0.1:" + server.getAddress().getPort() + "/prefs", null, false, false);
+			System.out.println("  NOTE: http torn-file check covers the stub server writes (temp file + rename),"
+					+ " not the library");
+			if (!classpathRes.mkdir())
+				throw new IOException("Unable to create directory " + classpathRes);
+			test.createFiles(classpathRes, true);
+			test.run("classpath", "classpath:stress", classpathDir.toURI().toURL(), true, false);
+		} finally {
+			server.stop(0);
+			deleteDir(localDir);
+			deleteDir(missingDir);
+			deleteDir(httpDir);
+			deleteDir(classpathRes);
+			deleteDir(classpathDir);
+		}
+		if (!errors.isEmpty()) {
+			for (final String e : errors) {
+				System.out.println("ERROR: " + e);
+			}
+			System.out.println("FAILED: " + errors.size() + " errors");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Create node files in advance; otherwise they are never marked as loaded (always stale)
+	 */
+	private void createFiles(final File baseDir, final boolean withContent) throws IOException {
+		touch(new File(baseDir, "ROOT" + FILE_EXTENSION));
+		touch(new File(baseDir, "stress" + FILE_EXTENSION));
+		for (int a = 0; a < apps; a++) {
+			final File f = new File(baseDir, FILE_PREFIX + a + FILE_EXTENSION);
+			if (withContent) {
+				final OutputStream os = new FileOutputStream(f);
+				try {
+					os.write("seq=1\ncheck=1\n".getBytes("ISO-8859-1"));
+				} finally {
+					close(os);
+				}
+			} else {
+				touch(f);
+			}
+		}
+	}
+
+	/**
+	 * @param classpath URL added to each webapp ClassLoader (null for none)
+	 * @param readOnly if true, no writers and files must be found from start
+	 * @param shared if true, all webapps use the same node, fetched through systemRoot() on each write
+	 */
+	private void run(final String phase, final String sourceDir, final URL classpath, final boolean readOnly,
+			final boolean shared) throws Exception {
+		System.setProperty(SOURCE_DIR_PROP, sourceDir);
+		running = true;
+		final int phaseWriters = (readOnly ? 0 : writers);
+		final AtomicLong sharedSeq = new AtomicLong();
+		final StandalonePreferencesFactory factory = new StandalonePreferencesFactory();
+		final List<WeakReference<ClassLoader>> loaderRefs = new ArrayList<WeakReference<ClassLoader>>();
+		final long[][] lastWritten = new long[apps][phaseWriters];
+		final List<Worker> workers = new ArrayList<Worker>();
+		final ClassLoader parent = StressTest.class.getClassLoader();
+		final ClassLoader mainLoader = Thread.currentThread().getContextClassLoader();
+		final URL[] urls = (classpath == null ? new URL[0] : new URL[] { classpath });
+		for (int a = 0; a < apps; a++) {
+			final ClassLoader loader = new URLClassLoader(urls, parent);
+			loaderRefs.add(new WeakReference<ClassLoader>(loader));
+			// Writers share one node (like an application caching its Preferences)
+			StandalonePreferences node = null;
+			if ((phaseWriters > 0) && !shared) {
+				Thread.currentThread().setContextClassLoader(loader);
+				try {
+					node = (StandalonePreferences) factory.systemRoot().node(NODE_PREFIX + a);
+				} finally {
+					Thread.currentThread().setContextClassLoader(mainLoader);
+				}
+			}
+			final AtomicLong seq = (shared ? sharedSeq : new AtomicLong());
+			final String nodeName = (shared ? SHARED_NODE : NODE_PREFIX + a);
+			final String fileName = (shared ? SHARED_FILE : FILE_PREFIX + a) + FILE_EXTENSION;
+			for (int t = 0; t < threads; t++) {
+				final Worker w;
+				if (t < phaseWriters) {
+					final String key = (shared ? "a" + a + "w" + t : "w" + t);
+					w = new Writer(factory, node, nodeName, key, seq, lastWritten[a], t);
+				} else {
+					w = new Reader(factory, nodeName, sourceDir, fileName, readOnly);
+				}
+				w.setName("stress-" + phase + "-app" + a + "-" + t);
+				w.setContextClassLoader(loader);
+				workers.add(w);
+			}
+		}
+		System.out.println("Phase " + phase + ": apps=" + apps + " threads=" + (apps * threads) + " seconds="
+				+ seconds + " sourcedir=" + sourceDir);
+		final long begin = System.nanoTime();
+		for (final Worker w : workers) {
+			w.start();
+		}
+		Thread.sleep(seconds * 1000L);
+		running = false;
+		for (final Worker w : workers) {
+			w.join();
+		}
+		final double elapsed = (System.nanoTime() - begin) / 1e9;
+		reportPhase(phase, workers, elapsed);
+		workers.clear();
+		verifyNoLostUpdates(phase, lastWritten, shared);
+		verifyNoLeaks(phase, factory, loaderRefs);
+	}
+
+	private void verifyNoLostUpdates(final String phase, final long[][] lastWritten, final boolean shared) {
+		// Fresh factory: reload everything from sourcedir
+		final StandalonePreferences root = (StandalonePreferences) new StandalonePreferencesFactory()
+				.systemRoot();
+		int checked = 0, lost = 0;
+		for (int a = 0; a < apps; a++) {
+			final java.util.prefs.Preferences node = root.node(shared ? SHARED_NODE : NODE_PREFIX + a);
+			for (int t = 0; t < lastWritten[a].length; t++) {
+				final String key = (shared ? "a" + a + "w" + t : "w" + t);
+				final long expected = lastWritten[a][t];
+				final long value = Long.parseLong(node.get(key, "0"));
+				checked++;
+				if (value != expected) {
+					lost++;
+					if (!shared) {
+						errors.add(phase + ": lost update app" + a + "/" + key + " expected=" + expected
+								+ " found=" + value);
+					}
+				}
+			}
+		}
+		if (shared && (lost > 0)) {
+			System.out.println("  KNOWN FAILURE: lost updates in " + lost + " of " + checked
+					+ " keys (each root has its own copy of the node and rewrites the whole file)");
+		}
+	}
+
+	private static void verifyNoLeaks(final String phase, final StandalonePreferencesFactory factory,
+			final List<WeakReference<ClassLoader>> loaderRefs) throws InterruptedException {
+		int alive = loaderRefs.size();
+		for (int i = 0; (i < 20) && (alive > 0); i++) {
+			System.gc();
+			Thread.sleep(50);
+			alive = 0;
+			for (final WeakReference<ClassLoader> ref : loaderRefs) {
+				if (ref.get() != null)
+					alive++;
+			}
+		}
+		if (alive > 0) {
+			errors.add(phase + ": leaked ClassLoaders=" + alive);
+		}
+		// Factory (and its SYSTEM_ROOT) must be alive during the check
+		factory.userRoot();
+	}
+
+	private static void reportPhase(final String phase, final List<Worker> workers, final double elapsed) {
+		final List<Worker> writers = new ArrayList<Worker>();
+		final List<Worker> readers = new ArrayList<Worker>();
+		for (final Worker w : workers) {
+			(w instanceof Writer ? writers : readers).add(w);
+		}
+		report(phase + " write", writers, elapsed);
+		report(phase + " read", readers, elapsed);
+	}
+
+	private static void report(final String name, final List<Worker> workers, final double elapsed) {
+		if (workers.isEmpty())
+			return;
+		long ops = 0;
+		int samples = 0;
+		for (final Worker w : workers) {
+			ops += w.ops;
+			samples += Math.min(w.ops, SAMPLES);
+		}
+		final long[] all = new long[samples];
+		int offset = 0;
+		for (final Worker w : workers) {
+			final int len = (int) Math.min(w.ops, SAMPLES);
+			System.arraycopy(w.latency, 0, all, offset, len);
+			offset += len;
+		}
+		Arrays.sort(all);
+		System.out.printf("  %-16s ops=%d throughput=%.0f ops/s p50=%.3fms p99=%.3fms max=%.3fms%n", //
+				name, ops, ops / elapsed, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+	}
+
+	private static double percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0)
+			return 0;
+		final int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+
+	abstract class Worker extends Thread {
+		final long[] latency = new long[SAMPLES];
+		long ops = 0;
+
+		@Override
+		public void run() {
+			while (running) {
+				final long begin = System.nanoTime();
+				try {
+					op();
+				} catch (Exception e) {
+					errors.add(getName() + ": " + e.toString());
+				}
+				latency[(int) (ops++ % SAMPLES)] = System.nanoTime() - begin;
+			}
+		}
+
+		abstract void op() throws Exception;
+	}
+
+	class Writer extends Worker {
+		private final StandalonePreferencesFactory factory;
+		private final StandalonePreferences cachedNode;
+		private final String nodeName;
+		private final String key;
+		private final AtomicLong seq;
+		private final long[] lastWritten;
+		private final int id;
+		private long counter = 0;
+
+		/**
+		 * @param cachedNode node shared by writers, or null to fetch it through systemRoot() on each write
+		 */
+		Writer(final StandalonePreferencesFactory factory, final StandalonePreferences cachedNode,
+				final String nodeName, final String key, final AtomicLong seq, final long[] lastWritten,
+				final int id) {
+			this.factory = factory;
+			this.cachedNode = cachedNode;
+			this.nodeName = nodeName;
+			this.key = key;
+			this.seq = seq;
+			this.lastWritten = lastWritten;
+			this.id = id;
+		}
+
+		@Override
+		void op() throws Exception {
+			final StandalonePreferences node = (cachedNode != null ? cachedNode
+					: (StandalonePreferences) factory.systemRoot().node(nodeName));
+			final String s = String.valueOf(seq.incrementAndGet());
+			final Map<String, String> changes = new LinkedHashMap<String, String>();
+			changes.put(key, String.valueOf(++counter));
+			changes.put("seq", s);
+			changes.put("check", s);
+			node.update(changes, true);
+			lastWritten[id] = counter;
+		}
+	}
+
+	class Reader extends Worker {
+		private final StandalonePreferencesFactory factory;
+		private final String nodeName;
+		private final String sourceDir;
+		private final String fileName;
+		private SourceFile src;
+		private boolean seen;
+
+		Reader(final StandalonePreferencesFactory factory, final String nodeName, final String sourceDir,
+				final String fileName, final boolean preloaded) {
+			this.factory = factory;
+			this.nodeName = nodeName;
+			this.sourceDir = sourceDir;
+			this.fileName = fileName;
+			this.seen = preloaded;
+		}
+
+		@Override
+		void op() throws Exception {
+			// Through systemRoot, to hit stale expiry and per ClassLoader roots
+			factory.systemRoot().node(nodeName).get("seq", null);
+			if ((ops & 15) == 0) {
+				checkFile();
+			}
+		}
+
+		private void checkFile() {
+			if (src == null) {
+				// In this thread: classpath source resolves with the context ClassLoader
+				src = SourceFile.getSource(sourceDir, fileName);
+			}
+			if (!src.fileExists()) {
+				if (seen)
+					errors.add(getName() + ": file disappeared " + src);
+				return;
+			}
+			final Properties p = new Properties();
+			InputStream is = null;
+			try {
+				is = src.getInputStream();
+				p.load(is);
+			} catch (IOException e) {
+				errors.add(getName() + ": error reading " + src + ": " + e.toString());
+				return;
+			} finally {
+				close(is);
+			}
+			final String seq = p.getProperty("seq");
+			if (seq == null) {
+				if (seen)
+					errors.add(getName() + ": torn file (no seq) " + src);
+				return;
+			}
+			seen = true;
+			if (!seq.equals(p.getProperty("check"))) {
+				errors.add(getName() + ": torn file seq=" + seq + " check=" + p.getProperty("check"));
+			}
+		}
+	}
+
+	/**
+	 * Minimal HTTP server for SourceFileHTTP: GET (file or "dir/" listing), HEAD and PUT
+	 */
+	private static HttpServer startServer(final File baseDir) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		final ExecutorService pool = Executors.newFixedThreadPool(32, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "stress-http");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.createContext("/prefs/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange ex) throws IOException {
+				try {
+					handleRequest(baseDir, ex);
+				} finally {
+					ex.close();
+				}
+			}
+		});
+		server.setExecutor(pool);
+		server.start();
+		return server;
+	}
+
+	private static void handleRequest(final File baseDir, final HttpExchange ex) throws IOException {
+		final String method = ex.getRequestMethod();
+		final String name = ex.getRequestURI().getPath().substring("/prefs/".length());
+		if (name.indexOf('/') >= 0) {
+			ex.sendResponseHeaders(404, -1);
+			return;
+		}
+		final File f = new File(baseDir, name);
+		if (name.isEmpty() && "GET".equals(method)) {
+			final StringBuilder sb = new StringBuilder();
+			for (final String file : baseDir.list()) {
+				if (file.endsWith(FILE_EXTENSION))
+					sb.append(file).append('\n');
+			}
+			sendBody(ex, sb.toString().getBytes("ISO-8859-1"));
+		} else if ("HEAD".equals(method)) {
+			ex.sendResponseHeaders(f.isFile() ? 200 : 404, -1);
+		} else if ("GET".equals(method)) {
+			if (!f.isFile()) {
+				ex.sendResponseHeaders(404, -1);
+				return;
+			}
+			final InputStream is = new FileInputStream(f);
+			try {
+				sendBody(ex, readAll(is));
+			} finally {
+				close(is);
+			}
+		} else if ("PUT".equals(method)) {
+			final byte[] body = readAll(ex.getRequestBody());
+			final File tmp = File.createTempFile(name + ".", ".tmp", baseDir);
+			final OutputStream os = new FileOutputStream(tmp);
+			try {
+				os.write(body);
+			} finally {
+				close(os);
+			}
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				ex.sendResponseHeaders(500, -1);
+				return;
+			}
+			ex.sendResponseHeaders(200, -1);
+		} else {
+			ex.sendResponseHeaders(405, -1);
+		}
+	}
+
+	private static void sendBody(final HttpExchange ex, final byte[] body) throws IOException {
+		ex.sendResponseHeaders(200, (body.length == 0 ? -1 : body.length));
+		if (body.length > 0) {
+			final OutputStream os = ex.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+		int len;
+		while ((len = is.read(buf)) != -1) {
+			bos.write(buf, 0, len);
+		}
+		return bos.toByteArray();
+	}
+
+	private static void touch(final File f) throws IOException {
+		if (!f.exists())
+			close(new FileOutputStream(f));
+	}
+
+	private static void close(final java.io.Closeable c) {
+		try {
+			if (c != null)
+				c.close();
+		} catch (Exception e) {
+		}
+	}
+
+	private static File createTempDir(final String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory " + dir);
+		return dir;
+	}
+
+	private static void deleteDir(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
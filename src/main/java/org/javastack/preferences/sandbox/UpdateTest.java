@@ -0,0 +1,175 @@
+package org.javastack.preferences.sandbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+import org.javastack.preferences.PreferenceBatchChangeEvent;
+import org.javastack.preferences.PreferenceBatchChangeListener;
+import org.javastack.preferences.StandalonePreferences;
+import org.javastack.preferences.StandalonePreferencesFactory;
+
+/**
+ * Checks of {@link StandalonePreferences#update(Map, boolean)}: puts and removes in one batch, rejected
+ * batches leave the node unchanged, flush saves once, one batch event per update
+ *
+ * <pre>
+ * Usage:
+ *
+ * java -cp standalone-preferences-X.X.X.jar:classes org.javastack.preferences.sandbox.UpdateTest
+ * </pre>
+ */
+public class UpdateTest {
+	private static final String SOURCE_DIR_PROP = "update.sourcedir";
+	private static final String NODE = "/com/acme/update";
+	// Keep strong reference, or handler is lost when logger is collected
+	private static final Logger prefsLog = Logger.getLogger(StandalonePreferences.class.getName());
+	private static final List<String> errors = new ArrayList<String>();
+	private static int saves = 0;
+	private static final List<PreferenceBatchChangeEvent> events = new ArrayList<PreferenceBatchChangeEvent>();
+
+	public static void main(final String[] args) throws Throwable {
+		System.setProperty("org.javastack.preferences.sourcedir", "{" + SOURCE_DIR_PROP + "}");
+		// Count saves from log (one "Saving" record per write of the node file)
+		prefsLog.setUseParentHandlers(false);
+		prefsLog.addHandler(new Handler() {
+			@Override
+			public void publish(final LogRecord record) {
+				if (record.getMessage().startsWith("Saving StandalonePreferences"))
+					saves++;
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		final File dir = createTempDir("update");
+		try {
+			System.setProperty(SOURCE_DIR_PROP, dir.getAbsolutePath());
+			final StandalonePreferences node = (StandalonePreferences) new StandalonePreferencesFactory()
+					.systemRoot().node(NODE);
+			node.addBatchChangeListener(new PreferenceBatchChangeListener() {
+				@Override
+				public void preferenceBatchChange(final PreferenceBatchChangeEvent evt) {
+					events.add(evt);
+				}
+			});
+			node.put("old", "x");
+
+			// Puts and removes in one batch
+			final Map<String, String> batch = new LinkedHashMap<String, String>();
+			batch.put("a", "1");
+			batch.put("old", null);
+			batch.put("b", "2");
+			node.update(batch, false);
+			expect("put a", "1", node.get("a", null));
+			expect("put b", "2", node.get("b", null));
+			expect("remove old", null, node.get("old", null));
+			expect("events", "1", String.valueOf(events.size()));
+			expect("event keys", "[a, old, b]", String.valueOf(events.get(0).getChanges().keySet()));
+			expect("event remove", "true", String.valueOf(events.get(0).getChanges().containsKey("old")));
+
+			// Rejected batches leave the node unchanged
+			final char[] big = new char[Preferences.MAX_VALUE_LENGTH + 1];
+			Arrays.fill(big, 'x');
+			expectRejected(node, "c", new String(big));
+			expectRejected(node, "d", "a\u0000b");
+			expectRejected(node, "e\u0000", "1");
+			expect("rejected events", "1", String.valueOf(events.size()));
+			expect("keys after rejected", "[a, b]", sortedKeys(node));
+
+			// Flush: one write with all changes
+			saves = 0;
+			batch.clear();
+			batch.put("f", "6");
+			batch.put("g", "7");
+			node.update(batch, true);
+			expect("saves", "1", String.valueOf(saves));
+			final Properties p = load(new File(dir, "com.acme.update.properties"));
+			expect("saved f", "6", p.getProperty("f"));
+			expect("saved g", "7", p.getProperty("g"));
+			expect("saved a", "1", p.getProperty("a"));
+			saves = 0;
+			node.flush();
+			expect("saves after flush (clean)", "0", String.valueOf(saves));
+		} finally {
+			deleteDir(dir);
+		}
+		if (!errors.isEmpty()) {
+			for (final String e : errors) {
+				System.out.println("ERROR: " + e);
+			}
+			System.out.println("FAILED: " + errors.size() + " errors");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void expectRejected(final StandalonePreferences node, final String key, final String value)
+			throws Exception {
+		final Map<String, String> batch = new LinkedHashMap<String, String>();
+		batch.put("c0", "valid first entry");
+		batch.put(key, value);
+		try {
+			node.update(batch, true);
+			errors.add("batch accepted: " + key.replace('\u0000', '0'));
+		} catch (IllegalArgumentException e) {
+			expect("rejected " + key.replace('\u0000', '0'), null, node.get("c0", null));
+		}
+	}
+
+	private static String sortedKeys(final Preferences node) throws Exception {
+		final String[] keys = node.keys();
+		Arrays.sort(keys);
+		return Arrays.toString(keys);
+	}
+
+	private static void expect(final String name, final String expected, final String value) {
+		if ((expected == null) ? (value != null) : !expected.equals(value)) {
+			errors.add(name + " expected=" + expected + " found=" + value);
+		}
+	}
+
+	private static Properties load(final File f) throws IOException {
+		final Properties p = new Properties();
+		final InputStream is = new FileInputStream(f);
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+		return p;
+	}
+
+	private static File createTempDir(final String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create directory " + dir);
+		return dir;
+	}
+
+	private static void deleteDir(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}